@@ -1,11 +1,25 @@
 package algorithms;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -14,7 +28,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
 /**
  * @author soyeb84
@@ -23,94 +48,198 @@ import java.util.stream.Stream;
 public class KNearestNeighbour {
 	private final static String TRAINING_SET_FILE = "d:\\breast_cancer_train.csv";
 	private final static String TEST_SET_FILE = "d:\\breast_cancer_test.csv";
+	private final static String TRAINING_SNAPSHOT_FILE = "d:\\breast_cancer_train.snapshot";
 	private static final int NORMALIZATION_MIN = 0;
 	private static final int NORMALIZATION_MAX = 1;
 	private static final int DEFAULT_K = 100;
 
+	private static final int PIPELINE_STAGES = 4;
+	private static final int PIPELINE_QUEUE_CAPACITY = 256;
+
 	private static final Summary summary = new Summary();
 
+	/** End of stream markers passed through the pipeline queues, compared by reference. **/
+	private static final String END_OF_ROWS = new String();
+	private static final PatientData END_OF_PATIENTS = new PatientData();
+	private static final Prediction END_OF_PREDICTIONS = new Prediction(null, null, null);
+
 	public static void main(String args[]) throws Exception {
-		List<String> trainingSetData = readAllLines(TRAINING_SET_FILE);
-		List<String> testDataSet = readAllLines(TEST_SET_FILE);
-		List<PatientData> trainingSet = convertRowToPatientData(trainingSetData);
+		File trainingFile = new File(TRAINING_SET_FILE);
+		File snapshotFile = new File(TRAINING_SNAPSHOT_FILE);
+		//reuse the normalized training set from the last run unless the training csv has changed since.
+		List<PatientData> trainingSet = TrainingSnapshot.load(snapshotFile, trainingFile, summary);
+		if (trainingSet == null) {
+			//checksum the csv in the same pass that reads it, so the snapshot always matches the rows it holds.
+			SourceChecksum sourceChecksum = new SourceChecksum();
+			List<String> trainingSetData = readAllLines(TRAINING_SET_FILE, sourceChecksum);
+			//fits the normalization summary on the training set, test rows are scaled with the same statistics.
+			trainingSet = convertRowToPatientData(trainingSetData);
+			try {
+				TrainingSnapshot.save(snapshotFile, sourceChecksum, summary, trainingSet);
+			} catch (IOException e) {
+				//the snapshot is only a cache, carry on with the training set already in memory.
+				System.out.println("Could not save training snapshot " + snapshotFile + ": " + e);
+			}
+		}
 		int[] k = {1,3,5,7,9};
 		for (int kValue : k) {
-			List<PatientData> testSet = convertRowToPatientData(testDataSet);
-			double truePositive=0;
-			double trueNegative=0;
-			double falsePositive=0;
-			double falseNegative=0;
 			System.out.println("------------------------------------------------");
 			System.out.println(String.format("Computing for k=%s",kValue));
-			try (PrintWriter pw = new PrintWriter(new File("d:\\predictions" + kValue + ".csv"))) {
-				//run loop for each patient specified in test set.
-				for (PatientData testPatient : testSet) {
-					Set<PatientData> nearestNbours = findKNearestNeigbours(testPatient, trainingSet, kValue);
-					TumorClass actualClass = testPatient.getTumorClass();
-					/** Number of patients from neighbourhood with malignant Tumor.**/
-					int malignantCount = 0;
-					
-					/** Number of patients from neighbourhood with benign Tumor **/
-					int benignCount = 0;
-					
-					for (PatientData nbor : nearestNbours) {
-//						System.out.println(String.format("neighbor id is: %s with class %s" , nbor.getPatientId(),nbor.getTumorClass()));
-						if (nbor.getTumorClass() == TumorClass.MALIGN) {
-							malignantCount++;
-						} else {
-							benignCount++;
-						}
-					}
-					TumorClass assignedClass = null;
-					
-					//If the number of patients in the neighborhood with benign tumor is more then assign benign class.
-					if (benignCount > malignantCount) {
-						assignedClass = TumorClass.BENIGN;
-					}else{
-						assignedClass = TumorClass.MALIGN;
-					}
-					
-					
-					
-					if(assignedClass==TumorClass.MALIGN){
-						if(actualClass==assignedClass){
-							//if actual and assigned are malignant.
-							truePositive++;
-						}else{
-							//if actual is benign but assigned is malign.
-							falsePositive++;
-						}
-					}else{
-						if(actualClass==assignedClass){
-							//if  actual and assigned class is benign
-							trueNegative++;
-						}else{
-							// if assigned is benign but actual is malign.
-							falseNegative++;
+			ConfusionMatrix matrix = runPipeline(TEST_SET_FILE, new File("d:\\predictions" + kValue + ".csv"),
+					trainingSet, kValue);
+			double truePositive = matrix.getTruePositive();
+			double trueNegative = matrix.getTrueNegative();
+			double falsePositive = matrix.getFalsePositive();
+			double falseNegative = matrix.getFalseNegative();
+
+			/**
+			 * Formulas derived from <a>https://en.wikipedia.org/wiki/Sensitivity_and_specificity</a>
+			 */
+			System.out.println("sensitivity % "+ (truePositive/(truePositive+falsePositive))*100);
+			System.out.println("Specificity % "+(trueNegative/(trueNegative+falseNegative))*100);
+			System.out.println(String.format("Accuracy is %s",((trueNegative + truePositive)/(matrix.getTotal()))));
+			System.out.println(String.format("Precision is %s",((truePositive)/(truePositive + falsePositive))));
+			System.out.println(String.format("%40s", "Actual Value"));
+			
+			System.out.println(String.format("%31s|%s","Malign","Benign"));
+			System.out.println(String.format("Predicted Value%10s|%5s|%5s","Malign",truePositive,falseNegative ));
+			System.out.println(String.format("%25s|%5s|%5s","Benign",falsePositive,trueNegative ));
+		}
+
+		
+	}
+
+	/**
+	 * Scores the test file as a streaming pipeline of read -> normalize ->
+	 * classify -> write stages. Each stage runs on its own thread and is
+	 * connected to the next one with a bounded queue, so a slow stage blocks
+	 * the ones before it and memory stays constant no matter how large the
+	 * test file is.
+	 * 
+	 * The end marker is only sent when a stage completes normally. If a stage
+	 * fails, the other stages are interrupted out of their blocking queue
+	 * calls and the failure is rethrown to the caller.
+	 * 
+	 * @param testFile
+	 *            path of the test dataset.
+	 * @param predictionsFile
+	 *            file the predictions are written to.
+	 * @param trainingSet
+	 *            normalized training set.
+	 * @param k
+	 *            number of neighbours to vote.
+	 * @return confusion matrix accumulated by the write stage.
+	 * @throws Exception
+	 *             if any of the stages fails.
+	 */
+	private static ConfusionMatrix runPipeline(final String testFile, final File predictionsFile,
+			final List<PatientData> trainingSet, final int k) throws Exception {
+		final BlockingQueue<String> rowQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+		final BlockingQueue<PatientData> patientQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+		final BlockingQueue<Prediction> predictionQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+		final ConfusionMatrix matrix = new ConfusionMatrix();
+
+		//daemon threads so that a stage stuck on a queue can never keep the JVM alive.
+		ExecutorService executor = Executors.newFixedThreadPool(PIPELINE_STAGES, runnable -> {
+			Thread thread = new Thread(runnable, "knn-pipeline");
+			thread.setDaemon(true);
+			return thread;
+		});
+		CompletionService<Void> stages = new ExecutorCompletionService<>(executor);
+		try {
+			//read stage
+			stages.submit(() -> {
+				try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(testFile)))) {
+					String line = null;
+					while ((line = br.readLine()) != null) {
+						if (isDataRow(line)) {
+							rowQueue.put(line);
 						}
 					}
+				}
+				rowQueue.put(END_OF_ROWS);
+				return null;
+			});
+			//normalize stage
+			stages.submit(() -> {
+				String row = null;
+				while ((row = rowQueue.take()) != END_OF_ROWS) {
+					patientQueue.put(normalizeRow(row));
+				}
+				patientQueue.put(END_OF_PATIENTS);
+				return null;
+			});
+			//classify stage
+			stages.submit(() -> {
+				PatientData testPatient = null;
+				while ((testPatient = patientQueue.take()) != END_OF_PATIENTS) {
+					TumorClass actualClass = testPatient.getTumorClass();
+					TumorClass assignedClass = classify(testPatient, trainingSet, k);
 					testPatient.setTumorClass(assignedClass);
-					pw.println(String.format("%s, %s", testPatient.getPatientId(),
-							testPatient.getTumorClass().name().toLowerCase()));
+					predictionQueue.put(new Prediction(testPatient, actualClass, assignedClass));
+				}
+				predictionQueue.put(END_OF_PREDICTIONS);
+				return null;
+			});
+			//write stage
+			stages.submit(() -> {
+				try (PrintWriter pw = new PrintWriter(predictionsFile)) {
+					Prediction prediction = null;
+					while ((prediction = predictionQueue.take()) != END_OF_PREDICTIONS) {
+						matrix.record(prediction.getActualClass(), prediction.getAssignedClass());
+						pw.println(String.format("%s, %s", prediction.getPatient().getPatientId(),
+								prediction.getAssignedClass().name().toLowerCase()));
+					}
+				}
+				return null;
+			});
+
+			//wait for the stages in completion order so that the first failure stops the whole pipeline.
+			for (int i = 0; i < PIPELINE_STAGES; i++) {
+				try {
+					stages.take().get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					throw cause instanceof Exception ? (Exception) cause : e;
 				}
-				
-				/**
-				 * Formulas derived from <a>https://en.wikipedia.org/wiki/Sensitivity_and_specificity</a>
-				 */
-				System.out.println("sensitivity % "+ (truePositive/(truePositive+falsePositive))*100);
-				System.out.println("Specificity % "+(trueNegative/(trueNegative+falseNegative))*100);
-				System.out.println(String.format("Accuracy is %s",((trueNegative + truePositive)/(testSet.size()))));
-				System.out.println(String.format("Precision is %s",((truePositive)/(truePositive + falsePositive))));
-				System.out.println(String.format("%40s", "Actual Value"));
-				
-				System.out.println(String.format("%31s|%s","Malign","Benign"));
-				System.out.println(String.format("Predicted Value%10s|%5s|%5s","Malign",truePositive,falseNegative ));
-				System.out.println(String.format("%25s|%5s|%5s","Benign",falsePositive,trueNegative ));
 			}
-
+		} finally {
+			executor.shutdownNow();
 		}
+		return matrix;
+	}
 
+	/**
+	 * Assigns a class to the patient by majority vote of its k nearest
+	 * neighbours from the training set.
+	 * 
+	 * @param testPatient
+	 * @param trainingSet
+	 * @param k
+	 * @return
+	 */
+	private static TumorClass classify(final PatientData testPatient, final List<PatientData> trainingSet,
+			final int k) {
+		Set<PatientData> nearestNbours = findKNearestNeigbours(testPatient, trainingSet, k);
+		/** Number of patients from neighbourhood with malignant Tumor.**/
+		int malignantCount = 0;
+		
+		/** Number of patients from neighbourhood with benign Tumor **/
+		int benignCount = 0;
 		
+		for (PatientData nbor : nearestNbours) {
+			if (nbor.getTumorClass() == TumorClass.MALIGN) {
+				malignantCount++;
+			} else {
+				benignCount++;
+			}
+		}
+		
+		//If the number of patients in the neighborhood with benign tumor is more then assign benign class.
+		if (benignCount > malignantCount) {
+			return TumorClass.BENIGN;
+		}
+		return TumorClass.MALIGN;
 	}
 
 	/**
@@ -147,26 +276,38 @@ public class KNearestNeighbour {
 	/**
 	 * Reads all the lines from the file.
 	 * @param absolutePath
+	 * @param checksum
+	 *            updated with every byte of the file as it is read.
 	 * @return
 	 * @throws IOException
 	 */
-	private static List<String> readAllLines(final String absolutePath) throws IOException {
+	private static List<String> readAllLines(final String absolutePath, final Checksum checksum)
+			throws IOException {
 		File f = new File(absolutePath);
-		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f)));
 		List<String> lines = new ArrayList<>();
-		String line = null;
+		try (BufferedReader br = new BufferedReader(
+				new InputStreamReader(new CheckedInputStream(new FileInputStream(f), checksum)))) {
+			String line = null;
 
-		while ((line = br.readLine()) != null) {
-			if (line.startsWith("\"")) {
-				continue;
-			}
-			if (!line.trim().isEmpty()) {
-				lines.add(line);
+			while ((line = br.readLine()) != null) {
+				if (isDataRow(line)) {
+					lines.add(line);
+				}
 			}
 		}
 		return lines;
 	}
 
+	/**
+	 * Tells whether a line read from a dataset file holds a patient row, the
+	 * quoted header and blank lines are skipped.
+	 * @param line
+	 * @return
+	 */
+	private static boolean isDataRow(final String line) {
+		return !line.startsWith("\"") && !line.trim().isEmpty();
+	}
+
 	/**
 	 * ' Constucts a patientdata object from a row read from the string file.
 	 * The conversion should take care of the attribute scaling/normalization.
@@ -180,17 +321,7 @@ public class KNearestNeighbour {
 		double[][] dataMatrix = new double[rows.size()][9];
 		int i = 0;
 		for (String row : rows) {
-			String[] split = row.split(",");
-			// skip first column as it only contains patient's ID.
-			dataMatrix[i][0] = Double.valueOf(split[1]);
-			dataMatrix[i][1] = Double.valueOf(split[2]);
-			dataMatrix[i][2] = Double.valueOf(split[3]);
-			dataMatrix[i][3] = Double.valueOf(split[4]);
-			dataMatrix[i][4] = Double.valueOf(split[5]);
-			dataMatrix[i][5] = Double.valueOf(split[6]);
-			dataMatrix[i][6] = Double.valueOf(split[7]);
-			dataMatrix[i][7] = Double.valueOf(split[8]);
-			dataMatrix[i][8] = Double.valueOf(split[9]);
+			dataMatrix[i] = parseRow(row.split(","));
 			i++;
 		}
 		//Extract column from matrix foreach field
@@ -226,40 +357,76 @@ public class KNearestNeighbour {
 		
 		//normalize the value of each field before storing it to the object.
 		for (int j = 0; j < rows.size(); j++) {
-			PatientData patientData = new PatientData();
-			patientData.setBareNuclei(getNormalizedValue(dataMatrix[j][FieldName.BARE_NUCLEI.getIndex()],
-					summary.getBareNucleiMin(), summary.getBareNucleiMax()));
+			patientDataList.add(toPatientData(rows.get(j).split(","), dataMatrix[j]));
+		}
 
-			patientData.setBlandChromo(getNormalizedValue(dataMatrix[j][FieldName.BLAND_CHROMO.getIndex()],
-					summary.getBlandChromoMin(), summary.getBlandChromoMax()));
+		return patientDataList;
+	}
 
-			patientData.setCellShape(getNormalizedValue(dataMatrix[j][FieldName.CELL_SHAPE.getIndex()],
-					summary.getCellShapeMin(), summary.getCellShapesMax()));
+	/**
+	 * Constructs a single patientdata object from a test row, scaling its
+	 * attributes with the min and max values fitted on the training set.
+	 * 
+	 * @param row
+	 *            a row from test dataset
+	 * @return a PatientData object
+	 */
+	private static PatientData normalizeRow(final String row) {
+		String[] split = row.split(",");
+		return toPatientData(split, parseRow(split));
+	}
 
-			patientData.setnNucleoli(getNormalizedValue(dataMatrix[j][FieldName.N_NUCLEI.getIndex()],
-					summary.getnNucleoliMin(), summary.getnNucleoliMax()));
+	/**
+	 * Parses the nine attribute columns of a row.
+	 * @param split
+	 * @return
+	 */
+	private static double[] parseRow(final String[] split) {
+		double[] values = new double[9];
+		// skip first column as it only contains patient's ID.
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Double.valueOf(split[i + 1]);
+		}
+		return values;
+	}
 
-			patientData.setMitoses(getNormalizedValue(dataMatrix[j][FieldName.MITESOIS.getIndex()],
-					summary.getMitosesMin(), summary.getMitosesMax()));
+	/**
+	 * Normalizes the raw attribute values of a row using the current summary.
+	 * @param split
+	 * @param values
+	 * @return
+	 */
+	private static PatientData toPatientData(final String[] split, final double[] values) {
+		PatientData patientData = new PatientData();
+		patientData.setBareNuclei(getNormalizedValue(values[FieldName.BARE_NUCLEI.getIndex()],
+				summary.getBareNucleiMin(), summary.getBareNucleiMax()));
 
-			patientData.setMargAdeison(getNormalizedValue(dataMatrix[j][FieldName.MARG_ADEISON.getIndex()],
-					summary.getMargAdeisonMin(), summary.getMargAdeisonMax()));
+		patientData.setBlandChromo(getNormalizedValue(values[FieldName.BLAND_CHROMO.getIndex()],
+				summary.getBlandChromoMin(), summary.getBlandChromoMax()));
 
-			patientData.setCellSize(getNormalizedValue(dataMatrix[j][FieldName.CELL_SIZE.getIndex()],
-					summary.getCellSizeMin(), summary.getCellSizeMax()));
+		patientData.setCellShape(getNormalizedValue(values[FieldName.CELL_SHAPE.getIndex()],
+				summary.getCellShapeMin(), summary.getCellShapesMax()));
 
-			patientData.setEpitCellSize(getNormalizedValue(dataMatrix[j][FieldName.EPIT_CELL_SIZE.getIndex()],
-					summary.getEpitCellMin(), summary.getEpitCellMax()));
+		patientData.setnNucleoli(getNormalizedValue(values[FieldName.N_NUCLEI.getIndex()],
+				summary.getnNucleoliMin(), summary.getnNucleoliMax()));
 
-			patientData.setClumpThickness(getNormalizedValue(dataMatrix[j][FieldName.CLUMP_THICKNESS.getIndex()],
-					summary.getClumpThicknessMin(), summary.getClumpThicknessMax()));
-			patientData.setTumorClass(TumorClass.fromName((rows.get(j).split(",")[10])));
-			patientData.setPatientId(rows.get(j).split(",")[0]);
+		patientData.setMitoses(getNormalizedValue(values[FieldName.MITESOIS.getIndex()],
+				summary.getMitosesMin(), summary.getMitosesMax()));
 
-			patientDataList.add(patientData);
-		}
+		patientData.setMargAdeison(getNormalizedValue(values[FieldName.MARG_ADEISON.getIndex()],
+				summary.getMargAdeisonMin(), summary.getMargAdeisonMax()));
 
-		return patientDataList;
+		patientData.setCellSize(getNormalizedValue(values[FieldName.CELL_SIZE.getIndex()],
+				summary.getCellSizeMin(), summary.getCellSizeMax()));
+
+		patientData.setEpitCellSize(getNormalizedValue(values[FieldName.EPIT_CELL_SIZE.getIndex()],
+				summary.getEpitCellMin(), summary.getEpitCellMax()));
+
+		patientData.setClumpThickness(getNormalizedValue(values[FieldName.CLUMP_THICKNESS.getIndex()],
+				summary.getClumpThicknessMin(), summary.getClumpThicknessMax()));
+		patientData.setTumorClass(TumorClass.fromName(split[10]));
+		patientData.setPatientId(split[0]);
+		return patientData;
 	}
 
 	/**
@@ -347,6 +514,322 @@ class DistanceWrapper implements Comparable<DistanceWrapper> {
 	}
 }
 
+class Prediction {
+	private final PatientData patient;
+	private final TumorClass actualClass;
+	private final TumorClass assignedClass;
+
+	public Prediction(PatientData patient, TumorClass actualClass, TumorClass assignedClass) {
+		this.patient = patient;
+		this.actualClass = actualClass;
+		this.assignedClass = assignedClass;
+	}
+
+	public PatientData getPatient() {
+		return patient;
+	}
+
+	public TumorClass getActualClass() {
+		return actualClass;
+	}
+
+	public TumorClass getAssignedClass() {
+		return assignedClass;
+	}
+}
+
+class ConfusionMatrix {
+	private double truePositive;
+	private double trueNegative;
+	private double falsePositive;
+	private double falseNegative;
+
+	public void record(TumorClass actualClass, TumorClass assignedClass) {
+		if(assignedClass==TumorClass.MALIGN){
+			if(actualClass==assignedClass){
+				//if actual and assigned are malignant.
+				truePositive++;
+			}else{
+				//if actual is benign but assigned is malign.
+				falsePositive++;
+			}
+		}else{
+			if(actualClass==assignedClass){
+				//if  actual and assigned class is benign
+				trueNegative++;
+			}else{
+				// if assigned is benign but actual is malign.
+				falseNegative++;
+			}
+		}
+	}
+
+	public double getTruePositive() {
+		return truePositive;
+	}
+
+	public double getTrueNegative() {
+		return trueNegative;
+	}
+
+	public double getFalsePositive() {
+		return falsePositive;
+	}
+
+	public double getFalseNegative() {
+		return falseNegative;
+	}
+
+	public double getTotal() {
+		return truePositive + trueNegative + falsePositive + falseNegative;
+	}
+}
+
+/**
+ * Binary snapshot of the fitted {@link Summary} and the normalized training
+ * set, so that a restart can skip parsing and normalizing the training csv.
+ * 
+ * The file holds a magic number, a format version and the CRC32 and length of
+ * the source csv, followed by the summary and the training rows and ends with
+ * a CRC32 of everything before it. A snapshot with another version, a bad
+ * checksum or built from different csv contents is ignored.
+ */
+class TrainingSnapshot {
+	private static final int MAGIC = 0x4B4E4E53;
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Set<PosixFilePermission> SNAPSHOT_PERMISSIONS = PosixFilePermissions
+			.fromString("rw-r--r--");
+
+	/**
+	 * Loads the training set from the snapshot and fills in the summary.
+	 * 
+	 * @param snapshotFile
+	 * @param sourceFile
+	 *            training csv the snapshot must have been built from.
+	 * @param summary
+	 *            summary to populate with the saved min and max values.
+	 * @return the normalized training set, or null if the snapshot is missing,
+	 *         stale or corrupt.
+	 * @throws IOException
+	 *             if the source csv cannot be read. Errors reading the
+	 *             snapshot itself are logged and treated as a missing
+	 *             snapshot.
+	 */
+	public static List<PatientData> load(final File snapshotFile, final File sourceFile, final Summary summary)
+			throws IOException {
+		if (!snapshotFile.isFile()) {
+			return null;
+		}
+		SourceChecksum sourceChecksum = checksum(sourceFile);
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(snapshotFile), BUFFER_SIZE), crc))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				System.out.println("Ignoring training snapshot with unknown format " + snapshotFile);
+				return null;
+			}
+			if (in.readLong() != sourceChecksum.getValue() || in.readLong() != sourceChecksum.getLength()) {
+				System.out.println("Ignoring stale training snapshot " + snapshotFile);
+				return null;
+			}
+			double[] bounds = new double[18];
+			for (int i = 0; i < bounds.length; i++) {
+				bounds[i] = in.readDouble();
+			}
+			int size = in.readInt();
+			if (size < 0) {
+				System.out.println("Ignoring corrupt training snapshot " + snapshotFile);
+				return null;
+			}
+			//the row count is not verified yet, so let the list grow instead of trusting it for the capacity.
+			List<PatientData> trainingSet = new ArrayList<>();
+			for (int i = 0; i < size; i++) {
+				trainingSet.add(readPatient(in));
+			}
+			long expected = crc.getValue();
+			if (in.readLong() != expected) {
+				System.out.println("Ignoring corrupt training snapshot " + snapshotFile);
+				return null;
+			}
+			//only touch the shared summary once the whole snapshot has been verified.
+			setBounds(summary, bounds);
+			return trainingSet;
+		} catch (EOFException e) {
+			System.out.println("Ignoring truncated training snapshot " + snapshotFile);
+			return null;
+		} catch (UTFDataFormatException | StreamCorruptedException e) {
+			System.out.println("Ignoring corrupt training snapshot " + snapshotFile);
+			return null;
+		} catch (IOException e) {
+			//the snapshot is only a cache, rebuild from the csv when it cannot be read.
+			System.out.println("Ignoring unreadable training snapshot " + snapshotFile + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the summary and training set to the snapshot. Each writer gets its
+	 * own temp file next to the target, which is then moved in place so
+	 * readers never see a partial snapshot.
+	 * 
+	 * @param snapshotFile
+	 * @param sourceChecksum
+	 *            checksum of the training csv taken while the training set was
+	 *            read from it.
+	 * @param summary
+	 * @param trainingSet
+	 * @throws IOException
+	 */
+	public static void save(final File snapshotFile, final SourceChecksum sourceChecksum, final Summary summary,
+			final List<PatientData> trainingSet) throws IOException {
+		Path directory = snapshotFile.getAbsoluteFile().getParentFile().toPath();
+		Path tmpFile = Files.createTempFile(directory, snapshotFile.getName(), ".tmp");
+		try {
+			CRC32 crc = new CRC32();
+			try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(tmpFile), BUFFER_SIZE), crc))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(sourceChecksum.getValue());
+				out.writeLong(sourceChecksum.getLength());
+				for (double bound : getBounds(summary)) {
+					out.writeDouble(bound);
+				}
+				out.writeInt(trainingSet.size());
+				for (PatientData patientData : trainingSet) {
+					writePatient(out, patientData);
+				}
+				out.writeLong(crc.getValue());
+			}
+			//temp files are created owner only, open the snapshot up to other accounts like a regular file.
+			if (Files.getFileAttributeView(tmpFile, PosixFileAttributeView.class) != null) {
+				Files.setPosixFilePermissions(tmpFile, SNAPSHOT_PERMISSIONS);
+			}
+			Files.move(tmpFile, snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			//no-op once the move has happened, otherwise drops the partial file.
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	private static SourceChecksum checksum(final File file) throws IOException {
+		SourceChecksum checksum = new SourceChecksum();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = new FileInputStream(file)) {
+			int read = 0;
+			while ((read = in.read(buffer)) != -1) {
+				checksum.update(buffer, 0, read);
+			}
+		}
+		return checksum;
+	}
+
+	private static void writePatient(final DataOutputStream out, final PatientData patientData)
+			throws IOException {
+		out.writeUTF(patientData.getPatientId());
+		out.writeDouble(patientData.getClumpThickness());
+		out.writeDouble(patientData.getCellSize());
+		out.writeDouble(patientData.getCellShape());
+		out.writeDouble(patientData.getMargAdeison());
+		out.writeDouble(patientData.getEpitCellSize());
+		out.writeDouble(patientData.getBareNuclei());
+		out.writeDouble(patientData.getBlandChromo());
+		out.writeDouble(patientData.getnNucleoli());
+		out.writeDouble(patientData.getMitoses());
+		TumorClass tumorClass = patientData.getTumorClass();
+		out.writeByte(tumorClass == null ? -1 : tumorClass.getClassNumber());
+	}
+
+	private static PatientData readPatient(final DataInputStream in) throws IOException {
+		PatientData patientData = new PatientData();
+		patientData.setPatientId(in.readUTF());
+		patientData.setClumpThickness(in.readDouble());
+		patientData.setCellSize(in.readDouble());
+		patientData.setCellShape(in.readDouble());
+		patientData.setMargAdeison(in.readDouble());
+		patientData.setEpitCellSize(in.readDouble());
+		patientData.setBareNuclei(in.readDouble());
+		patientData.setBlandChromo(in.readDouble());
+		patientData.setnNucleoli(in.readDouble());
+		patientData.setMitoses(in.readDouble());
+		byte classNumber = in.readByte();
+		if (classNumber < -1 || classNumber > 1) {
+			throw new StreamCorruptedException("Unknown tumor class " + classNumber);
+		}
+		patientData.setTumorClass(classNumber == -1 ? null : TumorClass.fromNumber(classNumber));
+		return patientData;
+	}
+
+	private static double[] getBounds(final Summary summary) {
+		return new double[] { summary.getClumpThicknessMin(), summary.getClumpThicknessMax(),
+				summary.getCellSizeMin(), summary.getCellSizeMax(), summary.getCellShapeMin(),
+				summary.getCellShapesMax(), summary.getMargAdeisonMin(), summary.getMargAdeisonMax(),
+				summary.getEpitCellMin(), summary.getEpitCellMax(), summary.getBareNucleiMin(),
+				summary.getBareNucleiMax(), summary.getBlandChromoMin(), summary.getBlandChromoMax(),
+				summary.getnNucleoliMin(), summary.getnNucleoliMax(), summary.getMitosesMin(),
+				summary.getMitosesMax() };
+	}
+
+	private static void setBounds(final Summary summary, final double[] bounds) {
+		summary.setClumpThicknessMin(bounds[0]);
+		summary.setClumpThicknessMax(bounds[1]);
+		summary.setCellSizeMin(bounds[2]);
+		summary.setCellSizeMax(bounds[3]);
+		summary.setCellShapeMin(bounds[4]);
+		summary.setCellShapesMax(bounds[5]);
+		summary.setMargAdeisonMin(bounds[6]);
+		summary.setMargAdeisonMax(bounds[7]);
+		summary.setEpitCellMin(bounds[8]);
+		summary.setEpitCellMax(bounds[9]);
+		summary.setBareNucleiMin(bounds[10]);
+		summary.setBareNucleiMax(bounds[11]);
+		summary.setBlandChromoMin(bounds[12]);
+		summary.setBlandChromoMax(bounds[13]);
+		summary.setnNucleoliMin(bounds[14]);
+		summary.setnNucleoliMax(bounds[15]);
+		summary.setMitosesMin(bounds[16]);
+		summary.setMitosesMax(bounds[17]);
+	}
+}
+
+/**
+ * CRC32 of a file that also counts the bytes it has seen, so the checksum and
+ * length of the training csv can be taken while it is being read.
+ */
+class SourceChecksum implements Checksum {
+	private final CRC32 crc = new CRC32();
+	private long length;
+
+	@Override
+	public void update(int b) {
+		crc.update(b);
+		length++;
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		crc.update(b, off, len);
+		length += len;
+	}
+
+	@Override
+	public long getValue() {
+		return crc.getValue();
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public void reset() {
+		crc.reset();
+		length = 0;
+	}
+}
+
 class Summary {
 	private double clumpThicknessMax;
 	private double clumpThicknessMin;
@@ -668,7 +1151,7 @@ enum TumorClass {
 		}
 	}
 
-	public TumorClass fromNumber(int number) {
+	public static TumorClass fromNumber(int number) {
 		return number == 0 ? TumorClass.BENIGN : TumorClass.MALIGN;
 	}
 